@@ -0,0 +1,103 @@
+package com.giphychat;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+// Writes a response body straight to disk and aborts the transfer once it grows past maxBytes.
+final class BoundedFileSubscriber implements HttpResponse.BodySubscriber<Path> {
+    private final Path target;
+    private final long maxBytes;
+    private final CompletableFuture<Path> result = new CompletableFuture<>();
+    private Flow.Subscription subscription;
+    private FileChannel channel;
+    private long received;
+    private volatile long written;
+
+    BoundedFileSubscriber(Path target, long maxBytes) {
+        this.target = target;
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        try {
+            channel = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.CREATE);
+        } catch (IOException e) {
+            subscription.cancel();
+            fail(e);
+            return;
+        }
+        subscription.request(1);
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> items) {
+        if (result.isDone()) {
+            return;
+        }
+        try {
+            for (ByteBuffer buffer : items) {
+                received += buffer.remaining();
+                if (received > maxBytes) {
+                    throw new IOException("Media body exceeds " + maxBytes + " bytes");
+                }
+                while (buffer.hasRemaining()) {
+                    written += channel.write(buffer);
+                }
+            }
+            subscription.request(1);
+        } catch (IOException e) {
+            subscription.cancel();
+            fail(e);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        fail(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        if (result.isDone()) {
+            return;
+        }
+        try {
+            channel.close();
+            result.complete(target);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    // Bytes written to disk so far, including for a transfer that was cut off at the limit.
+    long written() {
+        return written;
+    }
+
+    @Override
+    public CompletionStage<Path> getBody() {
+        return result;
+    }
+
+    private void fail(Throwable throwable) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // ignore
+            }
+        }
+        result.completeExceptionally(throwable);
+    }
+}
@@ -1,12 +1,63 @@
 package com.giphychat;
 
+import com.mojang.logging.LogUtils;
+import net.minecraft.client.Minecraft;
 import net.neoforged.fml.event.lifecycle.FMLClientSetupEvent;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
 
 public class ClientInit {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    private static final Duration CACHE_TTL = Duration.ofDays(7);
+    private static final long CACHE_MAX_BYTES = 250L * 1024L * 1024L;
+    // Roughly the first two pages of results.
+    private static final int CACHE_PRELOAD_COUNT = 48;
+
+    private static final RenditionSelector RENDITION_SELECTOR = new RenditionSelector();
+
+    private static MediaCache mediaCache;
+
     private ClientInit() {
     }
 
     public static void onClientSetup(final FMLClientSetupEvent event) {
-        // Client-only setup hooks are in event subscribers.
+        // Other client-only setup hooks are in event subscribers. The cache scan runs on its own daemon
+        // thread so it never holds up loading.
+        MediaCache cache;
+        try {
+            cache = mediaCache();
+        } catch (IllegalStateException e) {
+            LOGGER.warn("GiphyChat media cache unavailable", e);
+            return;
+        }
+        CompletableFuture.runAsync(() -> cache.warmUp(CACHE_PRELOAD_COUNT), runnable -> {
+            Thread thread = new Thread(runnable, "GiphyChat-CacheWarmUp");
+            thread.setDaemon(true);
+            thread.start();
+        }).exceptionally(error -> {
+            LOGGER.warn("GiphyChat cache warm-up failed", error);
+            return null;
+        });
+    }
+
+    public static synchronized MediaCache mediaCache() {
+        if (mediaCache == null) {
+            Path cacheDir = Minecraft.getInstance().gameDirectory.toPath().resolve("cache").resolve("giphychat");
+            try {
+                mediaCache = new MediaCache(cacheDir, CACHE_TTL, CACHE_MAX_BYTES);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to create cache directory", e);
+            }
+        }
+        return mediaCache;
+    }
+
+    // Shared so bandwidth and frame-time estimates carry over between screens.
+    public static RenditionSelector renditionSelector() {
+        return RENDITION_SELECTOR;
     }
 }
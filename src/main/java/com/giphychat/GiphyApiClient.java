@@ -9,6 +9,7 @@ import org.slf4j.Logger;
 import com.mojang.logging.LogUtils;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.net.http.HttpClient;
@@ -17,10 +18,13 @@ import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
 
 public class GiphyApiClient implements AutoCloseable {
     private static final Logger LOGGER = LogUtils.getLogger();
@@ -38,6 +42,7 @@ public class GiphyApiClient implements AutoCloseable {
         return thread;
     });
     private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
             .connectTimeout(Duration.ofSeconds(10))
             .followRedirects(HttpClient.Redirect.NORMAL)
             .executor(executor)
@@ -50,7 +55,7 @@ public class GiphyApiClient implements AutoCloseable {
         String encoded = URLEncoder.encode(query, StandardCharsets.UTF_8);
         String url = API_BASE + "/search?q=" + encoded + "&key=" + API_KEY
                 + "&client_key=" + CLIENT_KEY + "&limit=" + limit
-                + "&media_filter=tinygif,gif"
+                + "&media_filter=" + RenditionSelector.MEDIA_FILTER
                 + (pos != null && !pos.isEmpty() ? "&pos=" + pos : "");
         return fetch(url);
     }
@@ -58,7 +63,7 @@ public class GiphyApiClient implements AutoCloseable {
     public CompletableFuture<SearchResponse> featured(String pos, int limit) {
         String url = API_BASE + "/featured?key=" + API_KEY
                 + "&client_key=" + CLIENT_KEY + "&limit=" + limit
-                + "&media_filter=tinygif,gif"
+                + "&media_filter=" + RenditionSelector.MEDIA_FILTER
                 + (pos != null && !pos.isEmpty() ? "&pos=" + pos : "");
         return fetch(url);
     }
@@ -77,15 +82,21 @@ public class GiphyApiClient implements AutoCloseable {
 
             HttpRequest request = HttpRequest.newBuilder(URI.create(url))
                     .timeout(Duration.ofSeconds(10))
+                    .header("Accept-Encoding", "gzip")
                     .GET()
                     .build();
             try {
-                HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
                 if (response.statusCode() != 200) {
-                    LOGGER.warn("KLIPY API returned HTTP {}", response.statusCode());
-                    throw new RuntimeException("KLIPY API error: HTTP " + response.statusCode());
+                    // Error bodies are never decoded, so a bogus gzip body can't mask the status.
+                    try (InputStream ignored = response.body()) {
+                        LOGGER.warn("KLIPY API returned HTTP {}", response.statusCode());
+                        throw new RuntimeException("KLIPY API error: HTTP " + response.statusCode());
+                    }
+                }
+                try (InputStream body = decodeBody(response)) {
+                    return parseResponse(new String(body.readAllBytes(), StandardCharsets.UTF_8));
                 }
-                return parseResponse(response.body());
             } catch (IOException e) {
                 throw new RuntimeException("KLIPY API request failed", e);
             } catch (InterruptedException e) {
@@ -95,6 +106,14 @@ public class GiphyApiClient implements AutoCloseable {
         }, executor);
     }
 
+    private InputStream decodeBody(HttpResponse<InputStream> response) throws IOException {
+        // HttpClient does not decompress on its own, so undo the gzip we asked for.
+        boolean gzip = response.headers().firstValue("Content-Encoding")
+                .map(encoding -> encoding.equalsIgnoreCase("gzip"))
+                .orElse(false);
+        return gzip ? new GZIPInputStream(response.body()) : response.body();
+    }
+
     private SearchResponse parseResponse(String body) {
         JsonObject root = JsonParser.parseString(body).getAsJsonObject();
         String next = root.has("next") ? root.get("next").getAsString() : "";
@@ -125,7 +144,14 @@ public class GiphyApiClient implements AutoCloseable {
             if (thumbnailUrl == null || gifUrl == null) {
                 continue;
             }
-            results.add(new GiphyResult(id, title, thumbnailUrl, gifUrl));
+            Map<RenditionSelector.Rendition, String> renditions = new EnumMap<>(RenditionSelector.Rendition.class);
+            for (RenditionSelector.Rendition rendition : RenditionSelector.Rendition.values()) {
+                String renditionUrl = getMediaUrl(mediaFormats, rendition.format());
+                if (renditionUrl != null) {
+                    renditions.put(rendition, renditionUrl);
+                }
+            }
+            results.add(new GiphyResult(id, title, thumbnailUrl, gifUrl, renditions));
         }
         return new SearchResponse(results, next);
     }
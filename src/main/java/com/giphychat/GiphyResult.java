@@ -1,4 +1,7 @@
 package com.giphychat;
 
-public record GiphyResult(String id, String title, String thumbnailUrl, String gifUrl) {
+import java.util.Map;
+
+public record GiphyResult(String id, String title, String thumbnailUrl, String gifUrl,
+                          Map<RenditionSelector.Rendition, String> renditions) {
 }
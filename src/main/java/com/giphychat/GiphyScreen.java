@@ -9,11 +9,8 @@ import net.minecraft.client.gui.screens.Screen;
 import net.minecraft.network.chat.Component;
 import net.minecraft.resources.ResourceLocation;
 
-import java.io.IOException;
 import java.net.ConnectException;
 import java.net.UnknownHostException;
-import java.nio.file.Path;
-import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -29,6 +26,7 @@ public class GiphyScreen extends Screen {
 
     private final GiphyApiClient apiClient = new GiphyApiClient();
     private final ThumbnailManager thumbnailManager;
+    private final RenditionSelector renditionSelector = ClientInit.renditionSelector();
     private final Map<String, ResourceLocation> thumbnails = new ConcurrentHashMap<>();
 
     private EditBox searchField;
@@ -45,16 +43,12 @@ public class GiphyScreen extends Screen {
     private int scrollOffset = 0;
     private int maxScroll = 0;
     private int requestToken = 0;
+    private long lastFrameNanos = 0L;
     private CompletableFuture<GiphyApiClient.SearchResponse> currentRequest;
 
     public GiphyScreen() {
         super(Component.translatable("screen.giphychat.title"));
-        Path cacheDir = Minecraft.getInstance().gameDirectory.toPath().resolve("cache").resolve("giphychat");
-        try {
-            this.thumbnailManager = new ThumbnailManager(new MediaCache(cacheDir, Duration.ofDays(7), 250L * 1024L * 1024L));
-        } catch (IOException e) {
-            throw new IllegalStateException("Unable to create cache directory", e);
-        }
+        this.thumbnailManager = new ThumbnailManager(ClientInit.mediaCache(), renditionSelector);
     }
 
     @Override
@@ -112,6 +106,7 @@ public class GiphyScreen extends Screen {
         if (gridHeight > 0) {
             scrollOffset -= (int) (scrollY * 20);
             scrollOffset = Math.max(0, Math.min(maxScroll, scrollOffset));
+            renditionSelector.recordScroll();
         }
         if (shouldLoadMore()) {
             loadMore();
@@ -134,6 +129,11 @@ public class GiphyScreen extends Screen {
 
     @Override
     public void render(GuiGraphics graphics, int mouseX, int mouseY, float partialTick) {
+        long frameNanos = System.nanoTime();
+        if (lastFrameNanos != 0L) {
+            renditionSelector.recordFrame(frameNanos - lastFrameNanos);
+        }
+        lastFrameNanos = frameNanos;
         super.render(graphics, mouseX, mouseY, partialTick);
         graphics.drawCenteredString(font, title, width / 2, 4, 0xFFFFFF);
 
@@ -160,9 +160,16 @@ public class GiphyScreen extends Screen {
             if (y + THUMB_SIZE < gridTop || y > gridBottom) {
                 continue;
             }
-            ResourceLocation texture = thumbnails.get(result.thumbnailUrl());
+            String url = renditionSelector.select(result, thumbnails::containsKey,
+                    candidate -> !thumbnailManager.hasFailed(candidate));
+            ResourceLocation texture = thumbnails.get(url);
+            if (texture == null) {
+                thumbnailManager.requestThumbnail(url, location -> thumbnails.put(url, location));
+                texture = findLoadedRendition(result);
+            } else {
+                releaseOtherRenditions(result, url);
+            }
             if (texture == null) {
-                thumbnailManager.requestThumbnail(result.thumbnailUrl(), location -> thumbnails.put(result.thumbnailUrl(), location));
                 graphics.fill(x, y, x + THUMB_SIZE, y + THUMB_SIZE, 0xFF2B2B2B);
             } else {
                 graphics.blit(texture, x, y, 0, 0, THUMB_SIZE, THUMB_SIZE, THUMB_SIZE, THUMB_SIZE);
@@ -259,6 +266,32 @@ public class GiphyScreen extends Screen {
         return Component.translatable("screen.giphychat.status.error");
     }
 
+    // Keeps showing whatever rendition is already loaded while a different one is on its way.
+    private ResourceLocation findLoadedRendition(GiphyResult result) {
+        RenditionSelector.Rendition[] renditions = RenditionSelector.Rendition.values();
+        for (int i = renditions.length - 1; i >= 0; i--) {
+            String url = result.renditions().get(renditions[i]);
+            ResourceLocation texture = url != null ? thumbnails.get(url) : null;
+            if (texture != null) {
+                return texture;
+            }
+        }
+        return thumbnails.get(result.thumbnailUrl());
+    }
+
+    // The selector never steps back down once a richer rendition is loaded, so the others are dead weight.
+    private void releaseOtherRenditions(GiphyResult result, String shown) {
+        for (String url : result.renditions().values()) {
+            if (!url.equals(shown) && thumbnails.remove(url) != null) {
+                thumbnailManager.release(url);
+            }
+        }
+        String thumbnailUrl = result.thumbnailUrl();
+        if (!thumbnailUrl.equals(shown) && thumbnails.remove(thumbnailUrl) != null) {
+            thumbnailManager.release(thumbnailUrl);
+        }
+    }
+
     private boolean shouldLoadMore() {
         return hasMore && !loading && scrollOffset >= maxScroll - (THUMB_SIZE + PADDING);
     }
@@ -1,100 +1,427 @@
 package com.giphychat;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HexFormat;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
+// Content-addressed layout: urls/<sha1 of url>.meta points at blobs/<sha256 of body>.bin, so the same media
+// served from several URLs is stored once. Blobs are reference counted by the URL entries that point at them,
+// and the byte budget and eviction apply to blobs.
 public class MediaCache {
+    private static final String DIGEST = "digest";
+    private static final String ETAG = "etag";
+    private static final String LAST_MODIFIED = "last-modified";
+    private static final int MAGIC_LENGTH = 4;
+
     private final Path cacheDir;
+    private final Path urlDir;
+    private final Path blobDir;
     private final long ttlMillis;
     private final long maxBytes;
+    // Guarded by this. Until warmUp() has indexed the directory, reference counts are incomplete, so blobs are
+    // neither released nor pruned; warmUp() recounts references and ends with a prune of its own.
+    private final Map<String, String> urls = new HashMap<>();
+    private final Map<String, Blob> blobs = new HashMap<>();
+    private boolean indexed;
+
+    // An expired entry is still returned while it carries validators, so callers can revalidate it with a
+    // conditional request instead of downloading the body again.
+    public record Entry(Path path, String etag, String lastModified, boolean expired) {
+    }
+
+    private static final class Blob {
+        private final long size;
+        private long lastAccess;
+        private int refCount;
+
+        private Blob(long size, long lastAccess) {
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
 
     public MediaCache(Path cacheDir, Duration ttl, long maxBytes) throws IOException {
         this.cacheDir = cacheDir;
+        this.urlDir = cacheDir.resolve("urls");
+        this.blobDir = cacheDir.resolve("blobs");
         this.ttlMillis = ttl.toMillis();
         this.maxBytes = maxBytes;
-        Files.createDirectories(cacheDir);
+        Files.createDirectories(urlDir);
+        Files.createDirectories(blobDir);
     }
 
-    public Optional<byte[]> get(String url) {
-        Path path = pathForUrl(url);
+    public Optional<Entry> get(String url) {
+        String key = sha1(url);
+        Path metaPath = urlPath(key);
         try {
-            if (!Files.exists(path)) {
+            if (!Files.exists(metaPath)) {
                 return Optional.empty();
             }
-            long age = System.currentTimeMillis() - Files.getLastModifiedTime(path).toMillis();
-            if (age > ttlMillis) {
-                Files.deleteIfExists(path);
+            Properties meta = readMeta(metaPath);
+            String digest = meta.getProperty(DIGEST);
+            if (digest == null || !Files.exists(blobPath(digest))) {
+                removeUrl(key);
                 return Optional.empty();
             }
-            byte[] bytes = Files.readAllBytes(path);
-            Files.setLastModifiedTime(path, java.nio.file.attribute.FileTime.fromMillis(System.currentTimeMillis()));
-            return Optional.of(bytes);
+            long age = System.currentTimeMillis() - Files.getLastModifiedTime(metaPath).toMillis();
+            boolean expired = age > ttlMillis;
+            String etag = meta.getProperty(ETAG);
+            String lastModified = meta.getProperty(LAST_MODIFIED);
+            if (expired && etag == null && lastModified == null) {
+                removeUrl(key);
+                return Optional.empty();
+            }
+            if (!expired) {
+                touchBlob(digest);
+            }
+            return Optional.of(new Entry(blobPath(digest), etag, lastModified, expired));
         } catch (IOException e) {
             return Optional.empty();
         }
     }
 
-    public void put(String url, byte[] bytes) {
-        Path path = pathForUrl(url);
-        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+    // Downloads are streamed into a temp file inside the cache directory and then handed to commit().
+    public Path createTempFile(String url) throws IOException {
+        return Files.createTempFile(cacheDir, sha1(url) + ".", ".tmp");
+    }
+
+    public Optional<Path> commit(String url, Path temp, String etag, String lastModified) {
+        String key = sha1(url);
         try {
-            Files.write(temp, bytes);
-            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
-            Files.setLastModifiedTime(path, java.nio.file.attribute.FileTime.fromMillis(System.currentTimeMillis()));
+            String digest = sha256(temp);
+            Path blob = blobPath(digest);
+            synchronized (this) {
+                if (Files.exists(blob)) {
+                    Files.delete(temp);
+                } else {
+                    Files.move(temp, blob, StandardCopyOption.REPLACE_EXISTING);
+                }
+                writeMeta(urlPath(key), digest, etag, lastModified);
+                link(key, digest, Files.size(blob));
+                touchBlob(digest);
+            }
             prune();
+            return Optional.of(blob);
         } catch (IOException ignored) {
             try {
                 Files.deleteIfExists(temp);
             } catch (IOException ignoredDelete) {
                 // ignore
             }
+            return Optional.empty();
         }
     }
 
-    private void prune() throws IOException {
-        List<Path> files = new ArrayList<>();
-        long totalSize = 0L;
-        try (var stream = Files.list(cacheDir)) {
-            for (Path path : stream.toList()) {
-                if (Files.isRegularFile(path)) {
-                    files.add(path);
-                    totalSize += Files.size(path);
+    public void remove(String url) {
+        try {
+            removeUrl(sha1(url));
+        } catch (IOException ignored) {
+            // the entry is dropped by the next warm-up or expiry check
+        }
+    }
+
+    // Called after a 304: the stored body is still current, so restart its TTL.
+    public void refresh(String url) {
+        String key = sha1(url);
+        Path metaPath = urlPath(key);
+        try {
+            String digest = readMeta(metaPath).getProperty(DIGEST);
+            if (digest != null) {
+                Files.setLastModifiedTime(metaPath, FileTime.fromMillis(System.currentTimeMillis()));
+                touchBlob(digest);
+            }
+        } catch (IOException ignored) {
+            // the entry will simply be revalidated again next time
+        }
+    }
+
+    // Scans the cache in parallel: drops temp files left behind by earlier sessions and files from the old
+    // URL-keyed layout, blobs without an image header, URL entries that are expired without validators or point
+    // at a missing blob, and blobs nothing points at. Then it indexes what is left and reads the most recently
+    // used blobs once so they are already in the OS page cache.
+    public void warmUp(int preloadCount) {
+        long startedAt = System.currentTimeMillis();
+        Map<String, Blob> scannedBlobs = new ConcurrentHashMap<>();
+        Map<String, String> scannedUrls = new ConcurrentHashMap<>();
+        boolean complete = false;
+        try {
+            list(cacheDir).parallelStream().forEach(path -> scanRoot(path, startedAt));
+            list(blobDir).parallelStream().forEach(path -> scanBlob(path, startedAt, scannedBlobs));
+            list(urlDir).parallelStream().forEach(path -> scanUrl(path, startedAt, scannedBlobs, scannedUrls));
+            complete = true;
+        } catch (IOException ignored) {
+            // index whatever was scanned so the byte budget still applies
+        } finally {
+            // Runs on unchecked failures too: without an index nothing would ever be pruned this session.
+            buildIndex(scannedBlobs, scannedUrls, complete);
+            try {
+                prune();
+            } catch (IOException ignored) {
+                // the next commit prunes again
+            }
+        }
+        if (!complete) {
+            return;
+        }
+        List<Path> hottest;
+        synchronized (this) {
+            hottest = blobs.entrySet().stream()
+                    .sorted(Comparator.comparingLong((Map.Entry<String, Blob> entry) -> entry.getValue().lastAccess)
+                            .reversed())
+                    .limit(preloadCount)
+                    .map(entry -> blobPath(entry.getKey()))
+                    .toList();
+        }
+        hottest.parallelStream().forEach(path -> {
+            try (InputStream in = Files.newInputStream(path)) {
+                in.transferTo(OutputStream.nullOutputStream());
+            } catch (IOException ignored) {
+                // evicted in the meantime
+            }
+        });
+    }
+
+    private synchronized void buildIndex(Map<String, Blob> scannedBlobs, Map<String, String> scannedUrls,
+                                         boolean complete) {
+        // Entries committed while the scan was running are newer than what is on disk, so they win.
+        scannedBlobs.forEach(blobs::putIfAbsent);
+        scannedUrls.forEach(urls::putIfAbsent);
+        blobs.values().forEach(blob -> blob.refCount = 0);
+        urls.values().forEach(digest -> {
+            Blob blob = blobs.get(digest);
+            if (blob != null) {
+                blob.refCount++;
+            }
+        });
+        indexed = true;
+        if (!complete) {
+            // Unscanned URL entries may still point at blobs that look unreferenced here.
+            return;
+        }
+        for (String digest : List.copyOf(blobs.keySet())) {
+            if (blobs.get(digest).refCount <= 0) {
+                deleteBlob(digest);
+            }
+        }
+    }
+
+    private void scanRoot(Path path, long startedAt) {
+        try {
+            if (!Files.isRegularFile(path)) {
+                return;
+            }
+            String name = path.getFileName().toString();
+            if (name.endsWith(".tmp")) {
+                // Temp files from this session may belong to a download that is still running.
+                if (Files.getLastModifiedTime(path).toMillis() < startedAt) {
+                    Files.deleteIfExists(path);
                 }
+            } else if (name.endsWith(".bin") || name.endsWith(".meta")) {
+                Files.deleteIfExists(path);
             }
+        } catch (IOException ignored) {
+            // leave the file for the next startup
+        }
+    }
+
+    private void scanBlob(Path path, long startedAt, Map<String, Blob> scannedBlobs) {
+        String name = path.getFileName().toString();
+        try {
+            if (!Files.isRegularFile(path) || !name.endsWith(".bin")) {
+                return;
+            }
+            long modified = Files.getLastModifiedTime(path).toMillis();
+            // Blobs written or touched during this session were checked when they were committed.
+            if (modified < startedAt && !hasImageMagic(path)) {
+                Files.deleteIfExists(path);
+                return;
+            }
+            String digest = name.substring(0, name.length() - ".bin".length());
+            scannedBlobs.put(digest, new Blob(Files.size(path), modified));
+        } catch (IOException ignored) {
+            // leave the file for the next startup
+        }
+    }
+
+    private void scanUrl(Path path, long startedAt, Map<String, Blob> scannedBlobs, Map<String, String> scannedUrls) {
+        String name = path.getFileName().toString();
+        try {
+            if (!Files.isRegularFile(path) || !name.endsWith(".meta")) {
+                return;
+            }
+            Properties meta = readMeta(path);
+            String digest = meta.getProperty(DIGEST);
+            String key = name.substring(0, name.length() - ".meta".length());
+            long modified = Files.getLastModifiedTime(path).toMillis();
+            if (modified >= startedAt) {
+                // Committed or revalidated during the scan; its blob may have landed after the blob listing.
+                if (digest != null) {
+                    scannedUrls.put(key, digest);
+                }
+                return;
+            }
+            boolean expired = startedAt - modified > ttlMillis;
+            boolean revalidatable = meta.getProperty(ETAG) != null || meta.getProperty(LAST_MODIFIED) != null;
+            if (digest == null || !scannedBlobs.containsKey(digest) || (expired && !revalidatable)) {
+                Files.deleteIfExists(path);
+                return;
+            }
+            scannedUrls.put(key, digest);
+        } catch (IOException ignored) {
+            // leave the file for the next startup
+        }
+    }
+
+    private List<Path> list(Path dir) throws IOException {
+        try (var stream = Files.list(dir)) {
+            return stream.toList();
+        }
+    }
+
+    private boolean hasImageMagic(Path path) throws IOException {
+        byte[] magic = new byte[MAGIC_LENGTH];
+        try (InputStream in = Files.newInputStream(path)) {
+            if (in.readNBytes(magic, 0, MAGIC_LENGTH) < MAGIC_LENGTH) {
+                return false;
+            }
+        }
+        boolean gif = magic[0] == 'G' && magic[1] == 'I' && magic[2] == 'F' && magic[3] == '8';
+        boolean png = (magic[0] & 0xFF) == 0x89 && magic[1] == 'P' && magic[2] == 'N' && magic[3] == 'G';
+        boolean jpeg = (magic[0] & 0xFF) == 0xFF && (magic[1] & 0xFF) == 0xD8 && (magic[2] & 0xFF) == 0xFF;
+        return gif || png || jpeg;
+    }
+
+    private synchronized void prune() throws IOException {
+        if (!indexed) {
+            return;
+        }
+        long totalSize = 0L;
+        for (Blob blob : blobs.values()) {
+            totalSize += blob.size;
         }
         if (totalSize <= maxBytes) {
             return;
         }
-        files.sort(Comparator.comparingLong(path -> {
-            try {
-                return Files.getLastModifiedTime(path).toMillis();
-            } catch (IOException e) {
-                return 0L;
-            }
-        }));
-        for (Path path : files) {
+        List<Map.Entry<String, Blob>> entries = new ArrayList<>(blobs.entrySet());
+        entries.sort(Comparator.comparingLong(entry -> entry.getValue().lastAccess));
+        Map<String, List<String>> referrers = new HashMap<>();
+        urls.forEach((key, digest) -> referrers.computeIfAbsent(digest, ignored -> new ArrayList<>()).add(key));
+        for (Map.Entry<String, Blob> entry : entries) {
             if (totalSize <= maxBytes) {
                 break;
             }
-            long size = Files.size(path);
-            Files.deleteIfExists(path);
-            totalSize -= size;
+            for (String key : referrers.getOrDefault(entry.getKey(), List.of())) {
+                urls.remove(key);
+                Files.deleteIfExists(urlPath(key));
+            }
+            deleteBlob(entry.getKey());
+            totalSize -= entry.getValue().size;
+        }
+    }
+
+    private synchronized void link(String key, String digest, long size) {
+        String previous = urls.put(key, digest);
+        if (digest.equals(previous)) {
+            return;
+        }
+        blobs.computeIfAbsent(digest, ignored -> new Blob(size, System.currentTimeMillis())).refCount++;
+        if (previous != null) {
+            release(previous);
+        }
+    }
+
+    private synchronized void removeUrl(String key) throws IOException {
+        Files.deleteIfExists(urlPath(key));
+        String digest = urls.remove(key);
+        if (digest != null) {
+            release(digest);
+        }
+    }
+
+    private synchronized void release(String digest) {
+        Blob blob = blobs.get(digest);
+        if (blob != null && --blob.refCount <= 0 && indexed) {
+            deleteBlob(digest);
+        }
+    }
+
+    private synchronized void deleteBlob(String digest) {
+        blobs.remove(digest);
+        try {
+            Files.deleteIfExists(blobPath(digest));
+        } catch (IOException ignored) {
+            // an unreferenced blob is dropped by the next warm-up
+        }
+    }
+
+    // A URL entry's mtime records when it was last fetched or revalidated and drives the TTL; access time
+    // only lives on the blob, where it drives eviction.
+    private synchronized void touchBlob(String digest) throws IOException {
+        long now = System.currentTimeMillis();
+        Files.setLastModifiedTime(blobPath(digest), FileTime.fromMillis(now));
+        Blob blob = blobs.get(digest);
+        if (blob != null) {
+            blob.lastAccess = now;
+        }
+    }
+
+    private Properties readMeta(Path metaPath) {
+        Properties meta = new Properties();
+        if (Files.exists(metaPath)) {
+            try (InputStream in = Files.newInputStream(metaPath)) {
+                meta.load(in);
+            } catch (IOException ignored) {
+                // treat unreadable metadata as absent
+            }
+        }
+        return meta;
+    }
+
+    private void writeMeta(Path metaPath, String digest, String etag, String lastModified) throws IOException {
+        Properties meta = new Properties();
+        meta.setProperty(DIGEST, digest);
+        if (etag != null) {
+            meta.setProperty(ETAG, etag);
+        }
+        if (lastModified != null) {
+            meta.setProperty(LAST_MODIFIED, lastModified);
+        }
+        // get() reads URL entries without the lock, so replace them atomically instead of rewriting in place.
+        Path temp = Files.createTempFile(cacheDir, metaPath.getFileName() + ".", ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                meta.store(out, null);
+            }
+            Files.move(temp, metaPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
         }
     }
 
-    private Path pathForUrl(String url) {
-        String hash = sha1(url);
-        return cacheDir.resolve(hash + ".bin");
+    private Path urlPath(String key) {
+        return urlDir.resolve(key + ".meta");
+    }
+
+    private Path blobPath(String digest) {
+        return blobDir.resolve(digest + ".bin");
     }
 
     private String sha1(String input) {
@@ -106,4 +433,19 @@ public class MediaCache {
             throw new IllegalStateException("SHA-1 unavailable", e);
         }
     }
+
+    private String sha256(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 unavailable", e);
+        }
+    }
 }
@@ -0,0 +1,125 @@
+package com.giphychat;
+
+import java.util.function.Predicate;
+
+// Picks which media rendition each grid cell should show from the measured download throughput, the recent
+// frame time and whether the grid is still being scrolled.
+public class RenditionSelector {
+    private static final String FULL_FORMAT = "gif";
+    private static final double SMOOTHING = 0.2;
+    private static final long SETTLE_NANOS = 300_000_000L;
+    private static final long FRAME_BUDGET_NANOS = 1_000_000_000L / 30L;
+    private static final long MAX_FRAME_SAMPLE_NANOS = 250_000_000L;
+    // Throughput is sampled over wall-clock windows of transfer activity rather than per request, since
+    // concurrent downloads share one HTTP/2 connection and each sees only a slice of the link.
+    private static final long BANDWIDTH_WINDOW_NANOS = 1_000_000_000L;
+    // Smaller windows are dominated by request latency and say little about throughput.
+    private static final long MIN_BANDWIDTH_SAMPLE_BYTES = 16L * 1024L;
+    private static final double SLOW_LINK_BYTES_PER_SECOND = 200.0 * 1024.0;
+    private static final double FAST_LINK_BYTES_PER_SECOND = 1.5 * 1024.0 * 1024.0;
+
+    public enum Rendition {
+        STATIC("nanogifpreview"),
+        NANO("nanogif"),
+        TINY("tinygif"),
+        MEDIUM("mediumgif");
+
+        private final String format;
+
+        Rendition(String format) {
+            this.format = format;
+        }
+
+        public String format() {
+            return format;
+        }
+    }
+
+    public static final String MEDIA_FILTER = mediaFilter();
+
+    private double bytesPerSecond = Double.NaN;
+    private double frameNanos = Double.NaN;
+    private long lastScrollNanos;
+    private int activeDownloads;
+    private long windowStartNanos;
+    private long windowBytes;
+
+    public synchronized void downloadStarted() {
+        if (activeDownloads++ == 0) {
+            windowStartNanos = System.nanoTime();
+            windowBytes = 0L;
+        }
+    }
+
+    public synchronized void downloadFinished(long bytes) {
+        windowBytes += bytes;
+        activeDownloads = Math.max(0, activeDownloads - 1);
+        long elapsed = System.nanoTime() - windowStartNanos;
+        if (activeDownloads > 0 && elapsed < BANDWIDTH_WINDOW_NANOS) {
+            return;
+        }
+        if (windowBytes >= MIN_BANDWIDTH_SAMPLE_BYTES && elapsed > 0) {
+            bytesPerSecond = smooth(bytesPerSecond, windowBytes * 1_000_000_000.0 / elapsed);
+        }
+        windowStartNanos = System.nanoTime();
+        windowBytes = 0L;
+    }
+
+    public synchronized void recordFrame(long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        frameNanos = smooth(frameNanos, Math.min(nanos, MAX_FRAME_SAMPLE_NANOS));
+    }
+
+    public synchronized void recordScroll() {
+        lastScrollNanos = System.nanoTime();
+    }
+
+    public synchronized Rendition target() {
+        boolean scrolling = lastScrollNanos != 0 && System.nanoTime() - lastScrollNanos < SETTLE_NANOS;
+        // Unknown measurements count as neither slow nor fast.
+        boolean slowLink = bytesPerSecond < SLOW_LINK_BYTES_PER_SECOND;
+        boolean fastLink = bytesPerSecond > FAST_LINK_BYTES_PER_SECOND;
+        boolean overBudget = frameNanos > FRAME_BUDGET_NANOS;
+        if (scrolling) {
+            return slowLink || overBudget ? Rendition.STATIC : Rendition.NANO;
+        }
+        if (slowLink || overBudget) {
+            return Rendition.NANO;
+        }
+        return fastLink ? Rendition.MEDIUM : Rendition.TINY;
+    }
+
+    // Prefers a rendition at least as rich as the target that is already loaded, so the grid never steps down
+    // once something better is on screen; otherwise returns the best usable rendition up to the target.
+    public String select(GiphyResult result, Predicate<String> loaded, Predicate<String> usable) {
+        Rendition target = target();
+        Rendition[] renditions = Rendition.values();
+        for (int i = renditions.length - 1; i >= target.ordinal(); i--) {
+            String url = result.renditions().get(renditions[i]);
+            if (url != null && loaded.test(url)) {
+                return url;
+            }
+        }
+        for (int i = target.ordinal(); i >= 0; i--) {
+            String url = result.renditions().get(renditions[i]);
+            if (url != null && usable.test(url)) {
+                return url;
+            }
+        }
+        return result.thumbnailUrl();
+    }
+
+    private static double smooth(double current, double sample) {
+        return Double.isNaN(current) ? sample : current + SMOOTHING * (sample - current);
+    }
+
+    private static String mediaFilter() {
+        StringBuilder filter = new StringBuilder();
+        for (Rendition rendition : Rendition.values()) {
+            filter.append(rendition.format()).append(',');
+        }
+        return filter.append(FULL_FORMAT).toString();
+    }
+}
@@ -5,12 +5,15 @@ import net.minecraft.client.Minecraft;
 import net.minecraft.client.renderer.texture.DynamicTexture;
 import net.minecraft.resources.ResourceLocation;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.util.Map;
 import java.util.Optional;
@@ -19,26 +22,32 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
 public class ThumbnailManager implements AutoCloseable {
+    private static final long MAX_DOWNLOAD_BYTES = 8L * 1024L * 1024L;
+    // Shared by every screen so HTTP/2 connections to the media CDN stay open and multiplex thumbnail requests.
+    private static final HttpClient CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(Duration.ofSeconds(10))
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .build();
+
     private final ExecutorService executor = Executors.newFixedThreadPool(4, runnable -> {
         Thread thread = new Thread(runnable, "GiphyChat-Thumbnails");
         thread.setDaemon(true);
         return thread;
     });
-    private final HttpClient client = HttpClient.newBuilder()
-            .connectTimeout(Duration.ofSeconds(10))
-            .followRedirects(HttpClient.Redirect.NORMAL)
-            .executor(executor)
-            .build();
     private final MediaCache cache;
+    private final RenditionSelector renditionSelector;
     private final Map<String, ResourceLocation> textures = new ConcurrentHashMap<>();
     private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
     private final Set<String> failed = ConcurrentHashMap.newKeySet();
 
-    public ThumbnailManager(MediaCache cache) {
+    public ThumbnailManager(MediaCache cache, RenditionSelector renditionSelector) {
         this.cache = cache;
+        this.renditionSelector = renditionSelector;
     }
 
     public void requestThumbnail(String url, Consumer<ResourceLocation> callback) {
@@ -73,36 +82,115 @@ public class ThumbnailManager implements AutoCloseable {
                 });
     }
 
+    public void release(String url) {
+        ResourceLocation location = textures.remove(url);
+        if (location != null) {
+            Minecraft.getInstance().getTextureManager().release(location);
+        }
+    }
+
+    public boolean hasFailed(String url) {
+        return failed.contains(url);
+    }
+
     private NativeImage loadImage(String url) {
+        Optional<MediaCache.Entry> cached = cache.get(url);
+        Path path;
+        if (cached.isPresent() && !cached.get().expired()) {
+            path = cached.get().path();
+        } else {
+            path = download(url, cached.orElse(null));
+        }
+        if (path == null) {
+            return null;
+        }
         try {
-            Optional<byte[]> cached = cache.get(url);
-            byte[] bytes = cached.orElseGet(() -> download(url));
-            if (bytes == null) {
+            return decode(path);
+        } catch (NoSuchFileException e) {
+            // Evicted between the lookup and the read; fetch it again instead of marking the URL as failed.
+            Path refetched = download(url, null);
+            try {
+                return refetched != null ? decode(refetched) : null;
+            } catch (IOException retryError) {
                 return null;
             }
-            return NativeImage.read(new ByteArrayInputStream(bytes));
         } catch (IOException e) {
             return null;
         }
     }
 
-    private byte[] download(String url) {
+    private NativeImage decode(Path path) throws IOException {
+        // NativeImage reads the stream into native memory, so the file never has to sit on the heap as a whole.
+        try (InputStream in = Files.newInputStream(path)) {
+            return NativeImage.read(in);
+        }
+    }
+
+    private Path download(String url, MediaCache.Entry stale) {
+        Path fallback = stale != null ? stale.path() : null;
+        Path temp = null;
+        AtomicReference<BoundedFileSubscriber> subscriber = new AtomicReference<>();
         try {
-            HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+            temp = cache.createTempFile(url);
+            HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url))
                     .timeout(Duration.ofSeconds(10))
-                    .GET()
-                    .build();
-            HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
-            if (response.statusCode() != 200) {
+                    .GET();
+            if (stale != null && stale.etag() != null) {
+                builder.header("If-None-Match", stale.etag());
+            }
+            if (stale != null && stale.lastModified() != null) {
+                builder.header("If-Modified-Since", stale.lastModified());
+            }
+            Path target = temp;
+            HttpResponse<Path> response = CLIENT.send(builder.build(), info -> {
+                long declared = info.headers().firstValueAsLong("Content-Length").orElse(-1L);
+                if (info.statusCode() != 200 || declared > MAX_DOWNLOAD_BYTES) {
+                    return HttpResponse.BodySubscribers.replacing(null);
+                }
+                // Only time body transfer: connection setup, time to first byte and bodiless exchanges
+                // would drag the throughput estimate down.
+                BoundedFileSubscriber bodySubscriber = new BoundedFileSubscriber(target, MAX_DOWNLOAD_BYTES);
+                subscriber.set(bodySubscriber);
+                renditionSelector.downloadStarted();
+                return bodySubscriber;
+            });
+            if (response.statusCode() == 304 && stale != null) {
+                cache.refresh(url);
+                return fallback;
+            }
+            int status = response.statusCode();
+            if (status == 403 || status == 404 || status == 410) {
+                // The media is gone or refused; don't keep serving or revalidating the stale copy.
+                // Throttling (429) and timeouts (408) fall through to the stale copy like 5xx.
+                cache.remove(url);
                 return null;
             }
-            byte[] bytes = response.body();
-            if (bytes != null && bytes.length > 0) {
-                cache.put(url, bytes);
+            if (status != 200) {
+                return fallback;
+            }
+            long size = response.body() != null ? Files.size(temp) : 0L;
+            if (size == 0) {
+                return fallback;
             }
-            return bytes;
+            Path committed = cache.commit(url, temp,
+                    response.headers().firstValue("ETag").orElse(null),
+                    response.headers().firstValue("Last-Modified").orElse(null)).orElse(null);
+            temp = null;
+            return committed;
         } catch (IOException | InterruptedException e) {
-            return null;
+            return fallback;
+        } finally {
+            BoundedFileSubscriber bodySubscriber = subscriber.get();
+            if (bodySubscriber != null) {
+                renditionSelector.downloadFinished(bodySubscriber.written());
+            }
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                    // ignore
+                }
+            }
         }
     }
 